@@ -23,9 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 import com.android.fastcharge.battery.FastChargeConfig;
-import com.android.fastcharge.utils.FileUtils;
-import android.content.SharedPreferences;
-import androidx.preference.PreferenceManager;
+import com.android.fastcharge.battery.FastChargeService;
 
 public class BootCompletedReceiver extends BroadcastReceiver {
     private static final boolean DEBUG = false;
@@ -38,10 +36,9 @@ public class BootCompletedReceiver extends BroadcastReceiver {
 
         FastChargeConfig mConfig = FastChargeConfig.getInstance(context);
 
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mConfig.writeFastCharge(mConfig.getSavedFastCharge(context));
 
-        boolean fastchargeEnabled = sharedPrefs.getBoolean(mConfig.FASTCHARGE_KEY, false);
-        FileUtils.writeLine(mConfig.getFastChargePath(), fastchargeEnabled ? "1" : "0");
+        context.startService(new Intent(context, FastChargeService.class));
 
     }
 }
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2023-2024 cyberknight777
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fastcharge;
+
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_CURRENT_UA;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_END_TIME;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_FAST_CHARGE;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_ID;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_LEVEL;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_SESSION_ID;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_START_TIME;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_TEMPERATURE;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_TIME;
+import static com.android.fastcharge.battery.ChargeTelemetry.COLUMN_VOLTAGE_MV;
+import static com.android.fastcharge.battery.ChargeTelemetry.TABLE_SAMPLES;
+import static com.android.fastcharge.battery.ChargeTelemetry.TABLE_SESSIONS;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.android.fastcharge.battery.ChargeTelemetry;
+
+/**
+ * Read-only export of charge sessions and samples
+ *
+ * content://com.android.fastcharge.telemetry/sessions
+ * content://com.android.fastcharge.telemetry/samples
+ *
+ * Query parameters: session (id), from / to (epoch ms, from inclusive,
+ * to exclusive), bucket (downsampling width in ms, samples only),
+ * limit (rows per page, capped at MAX_PAGE_ROWS, query() only)
+ *
+ * query() returns a single page ordered by (time, _id), or by
+ * (time, session_id) when downsampling, where time is the bucket start.
+ * Fetch the next page by passing the last row's values as after_time and
+ * after_id (the session_id when downsampling). Only projection is honoured,
+ * selection and sortOrder are rejected; use the parameters above instead.
+ *
+ * openFile() streams the whole range through a pipe, page by page, ignoring
+ * limit. The default is CSV with a header line and empty fields for NULL.
+ * With format=binary the stream is big-endian: int magic "FCT1", int column
+ * count N, then one record of N longs per row in the CSV column order, with
+ * Long.MIN_VALUE for NULL (e.g. the end_time of an open session).
+ */
+public class TelemetryExportProvider extends ContentProvider {
+    private static final String TAG = "TelemetryExportProvider";
+
+    public static final String AUTHORITY = "com.android.fastcharge.telemetry";
+
+    public static final String PARAM_SESSION = "session";
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+    public static final String PARAM_BUCKET = "bucket";
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_AFTER_TIME = "after_time";
+    public static final String PARAM_AFTER_ID = "after_id";
+    public static final String PARAM_FORMAT = "format";
+
+    public static final String FORMAT_BINARY = "binary";
+
+    // Keeps a sample page around 200KB, well below one CursorWindow (2MB)
+    private static final int MAX_PAGE_ROWS = 2000;
+
+    // "FCT1", the column count, then one record of that many longs per row
+    private static final int BINARY_MAGIC = 0x46435431;
+    private static final long BINARY_NULL = Long.MIN_VALUE;
+
+    private static final int MATCH_SESSIONS = 1;
+    private static final int MATCH_SAMPLES = 2;
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sMatcher.addURI(AUTHORITY, TABLE_SESSIONS, MATCH_SESSIONS);
+        sMatcher.addURI(AUTHORITY, TABLE_SAMPLES, MATCH_SAMPLES);
+    }
+
+    private static final String[] SESSION_COLUMNS = {
+        COLUMN_ID, COLUMN_START_TIME, COLUMN_END_TIME,
+    };
+
+    private static final String[] SAMPLE_COLUMNS = {
+        COLUMN_ID, COLUMN_SESSION_ID, COLUMN_TIME, COLUMN_LEVEL, COLUMN_CURRENT_UA,
+        COLUMN_VOLTAGE_MV, COLUMN_TEMPERATURE, COLUMN_FAST_CHARGE,
+    };
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (selection != null || selectionArgs != null || sortOrder != null) {
+            throw new IllegalArgumentException(
+                    "selection and sortOrder are not supported, use query parameters");
+        }
+        final Request request = Request.parse(uri, sMatcher.match(uri));
+        return queryPage(request, projection, request.afterTime, request.afterId,
+                request.limit);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sMatcher.match(uri)) {
+            case MATCH_SESSIONS:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + "." + TABLE_SESSIONS;
+            case MATCH_SAMPLES:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + "." + TABLE_SAMPLES;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Telemetry export is read-only");
+        }
+        final Request request;
+        try {
+            request = Request.parse(uri, sMatcher.match(uri));
+        } catch (IllegalArgumentException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        final ParcelFileDescriptor[] fds;
+        try {
+            // Reliable, so a failed export reaches the reader as an error
+            // instead of looking like a complete, shorter file
+            fds = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not create pipe: " + e.getMessage());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> writePipe(fds[1], uri, request));
+        return fds[0];
+    }
+
+    /**
+     * Runs off the binder thread; nothing may escape it, or the persistent
+     * process goes down with it
+     */
+    private void writePipe(ParcelFileDescriptor output, Uri uri, Request request) {
+        final BufferedOutputStream out = new BufferedOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(output), 16 * 1024);
+        try {
+            writeRange(request, out);
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            // IOException is usually the reader closing its end early
+            Log.w(TAG, "Export of " + uri + " aborted", e);
+            try {
+                output.closeWithError("Export failed: " + e.getMessage());
+            } catch (IOException ignored) {
+                // Reader is gone already
+            }
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Telemetry export is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Telemetry export is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        throw new UnsupportedOperationException("Telemetry export is read-only");
+    }
+
+    /**
+     * Streams every page of the range, so only one page is held at a time
+     */
+    private void writeRange(Request request, BufferedOutputStream out) throws IOException {
+        final boolean binary = FORMAT_BINARY.equals(request.format);
+        final String[] columns = request.sessions ? SESSION_COLUMNS : SAMPLE_COLUMNS;
+        final DataOutputStream data = binary ? new DataOutputStream(out) : null;
+        final PrintWriter csv = binary ? null
+                : new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+        if (binary) {
+            data.writeInt(BINARY_MAGIC);
+            data.writeInt(columns.length);
+        } else {
+            csv.println(String.join(",", columns));
+        }
+
+        long afterTime = request.afterTime;
+        long afterId = request.afterId;
+        while (true) {
+            int rows = 0;
+            try (Cursor c = queryPage(request, columns, afterTime, afterId, MAX_PAGE_ROWS)) {
+                final int timeIndex = c.getColumnIndexOrThrow(request.timeColumn());
+                final int idIndex = c.getColumnIndexOrThrow(request.tieColumn());
+                while (c.moveToNext()) {
+                    rows++;
+                    afterTime = c.getLong(timeIndex);
+                    afterId = c.getLong(idIndex);
+                    for (int i = 0; i < columns.length; i++) {
+                        if (binary) {
+                            data.writeLong(c.isNull(i) ? BINARY_NULL : c.getLong(i));
+                        } else {
+                            if (i > 0) csv.print(',');
+                            if (!c.isNull(i)) csv.print(c.getLong(i));
+                        }
+                    }
+                    if (!binary) csv.println();
+                }
+            }
+            if (csv != null && csv.checkError()) {
+                throw new IOException("Write to export pipe failed");
+            }
+            if (rows < MAX_PAGE_ROWS) break;
+        }
+
+        if (binary) {
+            data.flush();
+        } else {
+            csv.flush();
+        }
+    }
+
+    /**
+     * Returns the rows strictly after (afterTime, afterId) in page order,
+     * see the class doc for the key of each mode
+     */
+    private Cursor queryPage(Request request, String[] projection, long afterTime,
+            long afterId, int limit) {
+        final SQLiteDatabase db = ChargeTelemetry.getInstance(getContext())
+                .getReadableDatabase();
+        final boolean downsample = !request.sessions && request.bucket > 1;
+        final String timeColumn = request.sessions ? COLUMN_START_TIME : COLUMN_TIME;
+        final List<String> args = new ArrayList<>();
+        final StringBuilder where = new StringBuilder();
+
+        where.append(timeColumn).append(" >= ?");
+        args.add(Long.toString(request.from));
+        if (request.to != Long.MAX_VALUE) {
+            where.append(" AND ").append(timeColumn).append(" < ?");
+            args.add(Long.toString(request.to));
+        }
+        if (request.session >= 0) {
+            where.append(" AND ")
+                    .append(request.sessions ? COLUMN_ID : COLUMN_SESSION_ID)
+                    .append(" = ?");
+            args.add(Long.toString(request.session));
+        }
+
+        final String limitArg = Integer.toString(limit);
+        if (!downsample) {
+            if (afterTime != Long.MIN_VALUE) {
+                where.append(" AND (").append(timeColumn).append(" > ? OR (")
+                        .append(timeColumn).append(" = ? AND ")
+                        .append(COLUMN_ID).append(" > ?))");
+                args.add(Long.toString(afterTime));
+                args.add(Long.toString(afterTime));
+                args.add(Long.toString(afterId));
+            }
+            final String[] columns = request.sessions ? SESSION_COLUMNS : SAMPLE_COLUMNS;
+            return db.query(request.sessions ? TABLE_SESSIONS : TABLE_SAMPLES,
+                    project(projection, columns, columns), where.toString(),
+                    args.toArray(new String[0]), null, null,
+                    timeColumn + ", " + COLUMN_ID, limitArg);
+        }
+
+        // Downsampled: one averaged row per session and bucket, keyed on
+        // (bucket start, session_id)
+        final String b = Long.toString(request.bucket);
+        final String bucketStart = "((" + COLUMN_TIME + " / " + b + ") * " + b + ")";
+        final String[] expressions = {
+            "MIN(" + COLUMN_ID + ")",
+            COLUMN_SESSION_ID,
+            bucketStart,
+            "CAST(AVG(" + COLUMN_LEVEL + ") AS INTEGER)",
+            "CAST(AVG(" + COLUMN_CURRENT_UA + ") AS INTEGER)",
+            "CAST(AVG(" + COLUMN_VOLTAGE_MV + ") AS INTEGER)",
+            "CAST(AVG(" + COLUMN_TEMPERATURE + ") AS INTEGER)",
+            "MAX(" + COLUMN_FAST_CHARGE + ")",
+        };
+        String having = null;
+        final List<String> havingArgs = new ArrayList<>();
+        if (afterTime != Long.MIN_VALUE) {
+            // Skip whole earlier buckets in the scan, then resume inside the last one
+            where.append(" AND ").append(COLUMN_TIME).append(" >= ?");
+            args.add(Long.toString(afterTime));
+            // The bucket start is an expression without column affinity, so the
+            // TEXT bound arguments must be cast or every comparison is false
+            having = bucketStart + " > CAST(? AS INTEGER) OR (" + bucketStart
+                    + " = CAST(? AS INTEGER) AND " + COLUMN_SESSION_ID + " > ?)";
+            havingArgs.add(Long.toString(afterTime));
+            havingArgs.add(Long.toString(afterTime));
+            havingArgs.add(Long.toString(afterId));
+        }
+        // HAVING arguments bind after the WHERE ones
+        args.addAll(havingArgs);
+        return db.query(TABLE_SAMPLES, project(projection, SAMPLE_COLUMNS, expressions),
+                where.toString(), args.toArray(new String[0]),
+                COLUMN_SESSION_ID + ", " + bucketStart, having,
+                bucketStart + ", " + COLUMN_SESSION_ID, limitArg);
+    }
+
+    /**
+     * Maps the requested projection onto the column expressions of a table,
+     * rejecting unknown columns
+     */
+    private static String[] project(String[] projection, String[] names, String[] expressions) {
+        final String[] requested = projection != null ? projection : names;
+        final String[] result = new String[requested.length];
+        for (int i = 0; i < requested.length; i++) {
+            final int index = Arrays.asList(names).indexOf(requested[i]);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown column " + requested[i]);
+            }
+            result[i] = expressions[index].equals(names[index]) ? names[index]
+                    : expressions[index] + " AS " + names[index];
+        }
+        return result;
+    }
+
+    /**
+     * Parsed export parameters, shared by query() and openFile()
+     */
+    private static final class Request {
+        boolean sessions;
+        long session = -1;
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        long bucket = 0;
+        int limit = MAX_PAGE_ROWS;
+        long afterTime = Long.MIN_VALUE;
+        long afterId = Long.MIN_VALUE;
+        String format;
+
+        String timeColumn() {
+            return sessions ? COLUMN_START_TIME : COLUMN_TIME;
+        }
+
+        String tieColumn() {
+            return !sessions && bucket > 1 ? COLUMN_SESSION_ID : COLUMN_ID;
+        }
+
+        static Request parse(Uri uri, int match) {
+            if (match != MATCH_SESSIONS && match != MATCH_SAMPLES) {
+                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            final Request r = new Request();
+            r.sessions = match == MATCH_SESSIONS;
+            r.session = getLong(uri, PARAM_SESSION, r.session);
+            r.from = Math.max(0, getLong(uri, PARAM_FROM, r.from));
+            r.to = getLong(uri, PARAM_TO, r.to);
+            r.bucket = getLong(uri, PARAM_BUCKET, r.bucket);
+            r.limit = (int) Math.max(1, Math.min(MAX_PAGE_ROWS,
+                    getLong(uri, PARAM_LIMIT, r.limit)));
+            r.format = uri.getQueryParameter(PARAM_FORMAT);
+            final boolean hasTime = uri.getQueryParameter(PARAM_AFTER_TIME) != null;
+            if (hasTime != (uri.getQueryParameter(PARAM_AFTER_ID) != null)) {
+                throw new IllegalArgumentException(
+                        PARAM_AFTER_TIME + " and " + PARAM_AFTER_ID + " go together");
+            }
+            if (hasTime) {
+                r.afterTime = getLong(uri, PARAM_AFTER_TIME, r.afterTime);
+                r.afterId = getLong(uri, PARAM_AFTER_ID, r.afterId);
+            }
+            return r;
+        }
+
+        private static long getLong(Uri uri, String name, long defValue) {
+            final String value = uri.getQueryParameter(name);
+            if (value == null) return defValue;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad " + name + ": " + value);
+            }
+        }
+    }
+}
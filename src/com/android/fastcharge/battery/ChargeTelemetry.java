@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2023-2024 cyberknight777
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fastcharge.battery;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Records charge sessions and battery samples for the telemetry export
+ * A session spans one plug-in to the matching unplug
+ * Writes run on a single background thread, except scheduler samples,
+ * which run on the caller's thread so they finish inside its wakeup
+ */
+public class ChargeTelemetry {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "ChargeTelemetry";
+
+    private static final String DATABASE_NAME = "telemetry.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // Samples and sessions older than this are dropped when a session starts
+    private static final long RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+
+    public static final String TABLE_SESSIONS = "sessions";
+    public static final String TABLE_SAMPLES = "samples";
+
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_START_TIME = "start_time";
+    public static final String COLUMN_END_TIME = "end_time";
+    public static final String COLUMN_SESSION_ID = "session_id";
+    public static final String COLUMN_TIME = "time";
+    public static final String COLUMN_LEVEL = "level";
+    public static final String COLUMN_CURRENT_UA = "current_ua";
+    public static final String COLUMN_VOLTAGE_MV = "voltage_mv";
+    public static final String COLUMN_TEMPERATURE = "temperature";
+    public static final String COLUMN_FAST_CHARGE = "fast_charge";
+
+    private static ChargeTelemetry instance = null;
+
+    public static synchronized ChargeTelemetry getInstance(Context context) {
+
+        if (instance == null) {
+            instance = new ChargeTelemetry(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private final Context mContext;
+    private final DatabaseHelper mHelper;
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    // Guards mSessionId and orders writes across mExecutor and sync callers
+    private final Object mLock = new Object();
+    private long mSessionId = -1;
+
+    private ChargeTelemetry(Context context) {
+        mContext = context;
+        mHelper = new DatabaseHelper(context);
+        mExecutor.execute(() -> {
+            synchronized (mLock) {
+                restoreOpenSession();
+            }
+        });
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return mHelper.getReadableDatabase();
+    }
+
+    public long getSessionCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_SESSIONS);
+    }
+
+    public long getSampleCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_SAMPLES);
+    }
+
+    /**
+     * Closes any open session and starts a new one, then takes a sample
+     */
+    public void onPowerConnected() {
+        final long now = System.currentTimeMillis();
+        mExecutor.execute(() -> {
+            synchronized (mLock) {
+                final SQLiteDatabase db = mHelper.getWritableDatabase();
+                closeSession(db, now);
+                startSession(db, now);
+            }
+        });
+    }
+
+    public void onPowerDisconnected() {
+        final long now = System.currentTimeMillis();
+        mExecutor.execute(() -> {
+            synchronized (mLock) {
+                final SQLiteDatabase db = mHelper.getWritableDatabase();
+                insertSample(db, now);
+                closeSession(db, now);
+            }
+        });
+    }
+
+    /**
+     * Reconciles the stored session with the current plug state, for
+     * plug changes missed while the process was not running
+     */
+    public void syncPlugState(boolean plugged) {
+        final long now = System.currentTimeMillis();
+        mExecutor.execute(() -> {
+            synchronized (mLock) {
+                final SQLiteDatabase db = mHelper.getWritableDatabase();
+                if (plugged && mSessionId < 0) {
+                    startSession(db, now);
+                } else if (!plugged && mSessionId >= 0) {
+                    closeSession(db, now);
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a sample for the open session, no-op while unplugged
+     */
+    public void recordSample() {
+        final long now = System.currentTimeMillis();
+        mExecutor.execute(() -> {
+            synchronized (mLock) {
+                insertSample(mHelper.getWritableDatabase(), now);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #recordSample()}, with the node state already read by
+     * the caller. Reads the battery and writes the row on the calling
+     * thread before returning, so a scheduler pass covers the whole sample
+     * with its wakeup and CPU budget.
+     */
+    public void recordSampleNow(boolean fastCharge) {
+        synchronized (mLock) {
+            insertSample(mHelper.getWritableDatabase(), System.currentTimeMillis(),
+                    fastCharge);
+        }
+    }
+
+    private void restoreOpenSession() {
+        try (Cursor c = mHelper.getReadableDatabase().query(TABLE_SESSIONS,
+                new String[] { COLUMN_ID }, COLUMN_END_TIME + " IS NULL", null,
+                null, null, COLUMN_ID + " DESC", "1")) {
+            if (c.moveToFirst()) {
+                mSessionId = c.getLong(0);
+            }
+        }
+    }
+
+    private void startSession(SQLiteDatabase db, long now) {
+        prune(db, now - RETENTION_MS);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_START_TIME, now);
+        mSessionId = db.insert(TABLE_SESSIONS, null, values);
+        if (DEBUG)
+            Log.d(TAG, "Started session " + mSessionId);
+        insertSample(db, now);
+    }
+
+    private void closeSession(SQLiteDatabase db, long now) {
+        if (mSessionId < 0) return;
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_END_TIME, now);
+        db.update(TABLE_SESSIONS, values, COLUMN_ID + "=?",
+                new String[] { Long.toString(mSessionId) });
+        if (DEBUG)
+            Log.d(TAG, "Closed session " + mSessionId);
+        mSessionId = -1;
+    }
+
+    private void insertSample(SQLiteDatabase db, long now) {
+        if (mSessionId < 0) return;
+        final FastChargeConfig config = FastChargeConfig.getInstance(mContext);
+        insertSample(db, now, config.isCurrentlyEnabled(config.getFastChargePath()));
+    }
+
+    private void insertSample(SQLiteDatabase db, long now, boolean fastCharge) {
+        if (mSessionId < 0) return;
+        final Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return;
+        final BatteryManager bm = mContext.getSystemService(BatteryManager.class);
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SESSION_ID, mSessionId);
+        values.put(COLUMN_TIME, now);
+        values.put(COLUMN_LEVEL, battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1));
+        values.put(COLUMN_CURRENT_UA,
+                bm.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW));
+        values.put(COLUMN_VOLTAGE_MV, battery.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1));
+        values.put(COLUMN_TEMPERATURE,
+                battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1));
+        values.put(COLUMN_FAST_CHARGE, fastCharge ? 1 : 0);
+        db.insert(TABLE_SAMPLES, null, values);
+    }
+
+    private static void prune(SQLiteDatabase db, long cutoff) {
+        final String[] args = { Long.toString(cutoff) };
+        db.delete(TABLE_SAMPLES, COLUMN_TIME + " < ?", args);
+        db.delete(TABLE_SESSIONS, COLUMN_END_TIME + " < ?", args);
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_SESSIONS + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_START_TIME + " INTEGER NOT NULL, "
+                    + COLUMN_END_TIME + " INTEGER)");
+            db.execSQL("CREATE TABLE " + TABLE_SAMPLES + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_SESSION_ID + " INTEGER NOT NULL, "
+                    + COLUMN_TIME + " INTEGER NOT NULL, "
+                    + COLUMN_LEVEL + " INTEGER, "
+                    + COLUMN_CURRENT_UA + " INTEGER, "
+                    + COLUMN_VOLTAGE_MV + " INTEGER, "
+                    + COLUMN_TEMPERATURE + " INTEGER, "
+                    + COLUMN_FAST_CHARGE + " INTEGER)");
+            db.execSQL("CREATE INDEX samples_time ON " + TABLE_SAMPLES
+                    + " (" + COLUMN_TIME + ")");
+            db.execSQL("CREATE INDEX samples_session_time ON " + TABLE_SAMPLES
+                    + " (" + COLUMN_SESSION_ID + ", " + COLUMN_TIME + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SAMPLES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SESSIONS);
+            onCreate(db);
+        }
+    }
+}
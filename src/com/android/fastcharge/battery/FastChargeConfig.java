@@ -17,7 +17,12 @@
 package com.android.fastcharge.battery;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.UserHandle;
+
+import androidx.preference.PreferenceManager;
 
 import com.android.fastcharge.utils.FileUtils;
 
@@ -25,7 +30,7 @@ public class FastChargeConfig {
 
     private static FastChargeConfig instance = null;
 
-    public static FastChargeConfig getInstance(Context context) {
+    public static synchronized FastChargeConfig getInstance(Context context) {
 
         if (instance == null) {
             instance = new FastChargeConfig(context.getApplicationContext());
@@ -38,6 +43,10 @@ public class FastChargeConfig {
 
     private final String config_FastChargePath;
 
+    // Guards node and preference writes so readers never see them half applied
+    private final Object mWriteLock = new Object();
+    private int mWritesInProgress;
+
     public static final String ACTION_FAST_CHARGE_SERVICE_CHANGED = "com.android.fastcharge.battery.FAST_CHARGE_SERVICE_CHANGED";
     public static final String EXTRA_FAST_CHARGE_STATE = "fastchargingenabled";
 
@@ -55,4 +64,97 @@ public class FastChargeConfig {
     public boolean isCurrentlyEnabled(String node) {
         return FileUtils.getNodeValueAsBoolean(node, false);
     }
+
+    public boolean isSupported() {
+        return FileUtils.fileExists(config_FastChargePath);
+    }
+
+    /**
+     * Writes the requested state to the node, skipping the write when the
+     * node already holds it.
+     *
+     * @return the state read back from the node after the write
+     */
+    public boolean writeFastCharge(boolean enable) {
+        synchronized (mWriteLock) {
+            if (isCurrentlyEnabled(config_FastChargePath) != enable) {
+                FileUtils.writeLine(config_FastChargePath, enable ? "1" : "0");
+            }
+            return isCurrentlyEnabled(config_FastChargePath);
+        }
+    }
+
+    public boolean getSavedFastCharge(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPrefs.getBoolean(FASTCHARGE_KEY, false);
+    }
+
+    public void saveFastCharge(Context context, boolean enabled) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (mWriteLock) {
+            sharedPrefs.edit().putBoolean(FASTCHARGE_KEY, enabled).apply();
+        }
+    }
+
+    /**
+     * Marks a multi-step write (e.g. a shell batch) in which the node may
+     * run ahead of the preference until {@link #endWrite()}
+     */
+    public void beginWrite() {
+        synchronized (mWriteLock) {
+            mWritesInProgress++;
+        }
+    }
+
+    public void endWrite() {
+        synchronized (mWriteLock) {
+            mWritesInProgress--;
+        }
+    }
+
+    public void notifyFastChargeChanged(Context context, boolean enabled) {
+        Intent intent = new Intent(ACTION_FAST_CHARGE_SERVICE_CHANGED);
+        intent.putExtra(EXTRA_FAST_CHARGE_STATE, enabled);
+        intent.setFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        context.sendBroadcastAsUser(intent, UserHandle.CURRENT);
+    }
+
+    /**
+     * Applies the state the same way the UI does: node write, preference
+     * store, then the change broadcast, so the two never drift apart.
+     *
+     * @return the state read back from the node
+     */
+    public boolean setFastChargeEnabled(Context context, boolean enable) {
+        final boolean enabled;
+        synchronized (mWriteLock) {
+            enabled = writeFastCharge(enable);
+            saveFastCharge(context, enabled);
+        }
+        notifyFastChargeChanged(context, enabled);
+        return enabled;
+    }
+
+    /**
+     * Puts the saved state back on the node when something else changed it,
+     * e.g. the kernel resetting it or a raw root write. Skipped while a
+     * write is in progress, since the node may then legitimately lead the
+     * preference.
+     *
+     * @param node Node state as read by the caller, re-read before acting
+     * @return true if the node was restored
+     */
+    public boolean restoreIfDrifted(Context context, boolean node) {
+        final boolean saved;
+        synchronized (mWriteLock) {
+            if (mWritesInProgress > 0) return false;
+            saved = getSavedFastCharge(context);
+            if (node == saved || isCurrentlyEnabled(config_FastChargePath) == saved) {
+                return false;
+            }
+            writeFastCharge(saved);
+        }
+        notifyFastChargeChanged(context, saved);
+        return true;
+    }
  }
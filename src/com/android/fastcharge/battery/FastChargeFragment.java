@@ -21,12 +21,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.UserHandle;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
-import androidx.preference.PreferenceManager;
 import androidx.preference.SwitchPreferenceCompat;
 
 import com.android.fastcharge.R;
@@ -122,25 +119,10 @@ public class FastChargeFragment extends PreferenceFragmentCompat implements
         if (mConfig.FASTCHARGE_KEY.equals(preference.getKey())) {
             // Set flag to prevent handling our own broadcast
             mInternalFastChargeStart = true;
-            Context mContext = getContext();
 
-            SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-
-            // Write the new value to the system file
-            // "1" enables fast charging, "0" disables it
-            FileUtils.writeLine(mConfig.getFastChargePath(), (Boolean) newValue ? "1" : "0");
-
-            // Double-check that the change was applied successfully
-            boolean enabled = mConfig.isCurrentlyEnabled(mConfig.getFastChargePath());
-
-            // Save the current state in preferences
-            sharedPrefs.edit().putBoolean(mConfig.FASTCHARGE_KEY, enabled).apply();
-
-            // Broadcast the change so other components can react
-            Intent intent = new Intent(mConfig.ACTION_FAST_CHARGE_SERVICE_CHANGED);
-            intent.putExtra(mConfig.EXTRA_FAST_CHARGE_STATE, enabled);
-            intent.setFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
-            mContext.sendBroadcastAsUser(intent, UserHandle.CURRENT);
+            // Write the node, save the state it ended up in and broadcast it
+            // as one step, so the node verifier never sees them half applied
+            mConfig.setFastChargeEnabled(getContext(), (Boolean) newValue);
         }
         return true;
     }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2023-2024 cyberknight777
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fastcharge.battery;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.ResultReceiver;
+import android.os.ServiceManager;
+import android.os.ShellCallback;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running service exposing the fast charge shell interface
+ * Commands arrive either through "cmd fastcharge" when the binder could be
+ * published, or through "dumpsys activity service" otherwise
+ */
+public class FastChargeService extends Service {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "FastChargeService";
+
+    // Name the binder is published under for "cmd"
+    public static final String SERVICE_NAME = "fastcharge";
+
+    // Counters reported by the "stats" shell command
+    final AtomicInteger mCommands = new AtomicInteger();
+    final AtomicInteger mBatches = new AtomicInteger();
+    final AtomicInteger mNodeWrites = new AtomicInteger();
+    final AtomicInteger mWriteFailures = new AtomicInteger();
+
+    private final Binder mBinder = new Binder() {
+        @Override
+        public void onShellCommand(FileDescriptor in, FileDescriptor out,
+                FileDescriptor err, String[] args, ShellCallback callback,
+                ResultReceiver resultReceiver) {
+            enforceShellCaller();
+            new FastChargeShellCommand(FastChargeService.this).exec(this, in, out, err,
+                    args, callback, resultReceiver);
+        }
+    };
+
+    // Periodic tasks, see NodeScheduler; intervals are powers of two
+    // minutes so they sit on its grid unchanged (screen on, plugged in)
+    private static final String TASK_VERIFY = "verify";
+    private static final String TASK_SAMPLE = "sample";
+    private static final long VERIFY_INTERVAL_MS = 16 * 60 * 1000;
+    private static final long SAMPLE_INTERVAL_MS = 4 * 60 * 1000;
+
+    private FastChargeConfig mConfig;
+    private ChargeTelemetry mTelemetry;
+    private NodeScheduler mScheduler;
+
+    /**
+     * Opens and closes telemetry sessions on plug changes and samples
+     * whenever the fast charge state changes
+     */
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                mTelemetry.onPowerConnected();
+                registerSampler();
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                mTelemetry.onPowerDisconnected();
+                mScheduler.unregister(TASK_SAMPLE);
+            } else if (FastChargeConfig.ACTION_FAST_CHARGE_SERVICE_CHANGED.equals(action)) {
+                mTelemetry.recordSample();
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConfig = FastChargeConfig.getInstance(this);
+        mTelemetry = ChargeTelemetry.getInstance(this);
+        mScheduler = NodeScheduler.getInstance(this);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(FastChargeConfig.ACTION_FAST_CHARGE_SERVICE_CHANGED);
+        registerReceiver(mPowerReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+
+        // Catch up on plug changes made while the process was down
+        final Intent battery = registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        final boolean plugged = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        mTelemetry.syncPlugState(plugged);
+
+        if (mConfig.isSupported()) {
+            mScheduler.register(TASK_VERIFY, VERIFY_INTERVAL_MS,
+                    new String[] { mConfig.getFastChargePath() }, this::verifyNode);
+            if (plugged) registerSampler();
+        }
+
+        try {
+            // Needs a service_contexts entry for "fastcharge" in the device sepolicy
+            ServiceManager.addService(SERVICE_NAME, mBinder);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Could not publish " + SERVICE_NAME + ", use dumpsys instead", e);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (DEBUG)
+            Log.d(TAG, "Started");
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mPowerReceiver);
+        mScheduler.unregister(TASK_VERIFY);
+        mScheduler.unregister(TASK_SAMPLE);
+        super.onDestroy();
+    }
+
+    private void registerSampler() {
+        if (!mConfig.isSupported()) return;
+        mScheduler.register(TASK_SAMPLE, SAMPLE_INTERVAL_MS,
+                new String[] { mConfig.getFastChargePath() }, this::sampleNode);
+    }
+
+    /**
+     * Puts the saved state back when something else changed the node,
+     * e.g. the kernel resetting it or a raw root write
+     */
+    private void verifyNode(Map<String, String> nodes) {
+        final String value = nodes.get(mConfig.getFastChargePath());
+        if (value == null) return;
+        if (mConfig.restoreIfDrifted(this, !value.equals("0"))) {
+            Log.i(TAG, "Node out of sync, restored the saved state");
+        }
+    }
+
+    private void sampleNode(Map<String, String> nodes) {
+        final String value = nodes.get(mConfig.getFastChargePath());
+        if (value == null) return;
+        mTelemetry.recordSampleNow(!value.equals("0"));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Fallback entry point: "dumpsys activity service
+     * com.android.fastcharge/.battery.FastChargeService <command> [args]"
+     * dumpsys already enforces the DUMP permission, and stdin is not
+     * forwarded here, so batch takes ';' separated commands instead
+     * Without arguments (e.g. from a bugreport) prints status and stats
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.flush();
+        if (args == null || args.length == 0) {
+            runDumpCommand(fd, new String[] { "status" });
+            runDumpCommand(fd, new String[] { "stats" });
+            return;
+        }
+        runDumpCommand(fd, args);
+    }
+
+    private void runDumpCommand(FileDescriptor fd, String[] args) {
+        new FastChargeShellCommand(this).exec(mBinder, null, fd, fd, args, null,
+                new ResultReceiver(null));
+    }
+
+    private static void enforceShellCaller() {
+        final int uid = Binder.getCallingUid();
+        if (uid != Process.SHELL_UID && uid != Process.ROOT_UID
+                && uid != Process.SYSTEM_UID) {
+            throw new SecurityException("Shell commands are restricted, uid " + uid);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2023-2024 cyberknight777
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fastcharge.battery;
+
+import android.os.ShellCommand;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Shell interface for fast charge, so scripts never have to write the node
+ * directly and leave the preference store out of sync
+ */
+class FastChargeShellCommand extends ShellCommand {
+
+    private final FastChargeService mService;
+    private final FastChargeConfig mConfig;
+
+    // Arguments of the current batch line, null outside of batch mode
+    private String[] mLineArgs;
+    private int mLinePos;
+
+    // State left on the node by the batch, published once when it ends
+    private boolean mInBatch;
+    private boolean mBatchChanged;
+    private boolean mBatchState;
+
+    FastChargeShellCommand(FastChargeService service) {
+        mService = service;
+        mConfig = FastChargeConfig.getInstance(service);
+    }
+
+    @Override
+    public int onCommand(String cmd) {
+        if (cmd == null) {
+            return handleDefaultCommands(cmd);
+        }
+        if ("batch".equals(cmd)) {
+            return runBatch();
+        }
+        return runCommand(cmd);
+    }
+
+    private int runCommand(String cmd) {
+        mService.mCommands.incrementAndGet();
+        final PrintWriter pw = getOutPrintWriter();
+        switch (cmd) {
+            case "get":
+                return runGet(pw);
+            case "set":
+                return runSet(pw);
+            case "status":
+                return runStatus(pw);
+            case "profile":
+                return runProfile(pw);
+            case "stats":
+                return runStats(pw);
+            default:
+                getErrPrintWriter().println("Unknown command: " + cmd);
+                return -1;
+        }
+    }
+
+    private int runGet(PrintWriter pw) {
+        if (!mConfig.isSupported()) {
+            getErrPrintWriter().println("Fast charging is not supported by the kernel");
+            return -1;
+        }
+        pw.println(mConfig.isCurrentlyEnabled(mConfig.getFastChargePath()) ? "1" : "0");
+        return 0;
+    }
+
+    private int runSet(PrintWriter pw) {
+        final String value = nextArg();
+        final Boolean enable = parseState(value);
+        if (enable == null) {
+            getErrPrintWriter().println("Expected on|off|1|0, got: " + value);
+            return -1;
+        }
+        return apply(pw, enable);
+    }
+
+    private int runStatus(PrintWriter pw) {
+        final boolean supported = mConfig.isSupported();
+        final boolean node = mConfig.isCurrentlyEnabled(mConfig.getFastChargePath());
+        final boolean saved = mConfig.getSavedFastCharge(mService);
+        pw.println("path=" + mConfig.getFastChargePath());
+        pw.println("supported=" + supported);
+        pw.println("node=" + (supported ? (node ? "1" : "0") : "-"));
+        pw.println("saved=" + (saved ? "1" : "0"));
+        pw.println("in_sync=" + (supported && node == saved));
+        return 0;
+    }
+
+    /**
+     * Profiles map onto the single node this app drives:
+     * fast -> on, cool -> off, saved -> re-apply the persisted preference
+     */
+    private int runProfile(PrintWriter pw) {
+        final String op = nextArg();
+        if (!"apply".equals(op)) {
+            getErrPrintWriter().println("Usage: profile apply <fast|cool|saved>");
+            return -1;
+        }
+        final String name = nextArg();
+        if ("fast".equals(name)) {
+            return apply(pw, true);
+        } else if ("cool".equals(name)) {
+            return apply(pw, false);
+        } else if ("saved".equals(name)) {
+            return apply(pw, mConfig.getSavedFastCharge(mService));
+        }
+        getErrPrintWriter().println("Unknown profile: " + name);
+        return -1;
+    }
+
+    private int runStats(PrintWriter pw) {
+        final String op = nextArg();
+        if (op != null && !"dump".equals(op)) {
+            getErrPrintWriter().println("Usage: stats [dump]");
+            return -1;
+        }
+        pw.println("commands=" + mService.mCommands.get());
+        pw.println("batches=" + mService.mBatches.get());
+        pw.println("node_writes=" + mService.mNodeWrites.get());
+        pw.println("write_failures=" + mService.mWriteFailures.get());
+        final ChargeTelemetry telemetry = ChargeTelemetry.getInstance(mService);
+        pw.println("telemetry_sessions=" + telemetry.getSessionCount());
+        pw.println("telemetry_samples=" + telemetry.getSampleCount());
+        NodeScheduler.getInstance(mService).dump(pw);
+        return 0;
+    }
+
+    private int apply(PrintWriter pw, boolean enable) {
+        if (!mConfig.isSupported()) {
+            getErrPrintWriter().println("Fast charging is not supported by the kernel");
+            return -1;
+        }
+        mService.mNodeWrites.incrementAndGet();
+        final boolean enabled;
+        if (mInBatch) {
+            // Preference and broadcast are deferred to the end of the batch
+            enabled = mConfig.writeFastCharge(enable);
+            mBatchChanged = true;
+            mBatchState = enabled;
+        } else {
+            enabled = mConfig.setFastChargeEnabled(mService, enable);
+        }
+        if (enabled != enable) {
+            mService.mWriteFailures.incrementAndGet();
+        }
+        pw.println(enabled ? "1" : "0");
+        return enabled == enable ? 0 : -1;
+    }
+
+    /**
+     * Runs one command per line, read from stdin or, when invoked through
+     * dumpsys, from the remaining arguments split on ';'
+     * Stops at the first failing line and reports its number
+     */
+    private int runBatch() {
+        mService.mBatches.incrementAndGet();
+        final PrintWriter pw = getOutPrintWriter();
+        final String inline = joinRemainingArgs();
+        if (inline == null && getInFileDescriptor() == null) {
+            // dumpsys does not forward stdin
+            getErrPrintWriter().println("Usage: batch CMD; CMD; ... (no stdin available)");
+            return -1;
+        }
+        final Reader source = inline != null
+                ? new StringReader(inline.replace(';', '\n'))
+                : new InputStreamReader(getRawInputStream());
+
+        int res = 0;
+        int lineNo = 0;
+        mInBatch = true;
+        mConfig.beginWrite();
+        try (BufferedReader reader = new BufferedReader(source)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                mLineArgs = line.split("\\s+");
+                mLinePos = 1;
+                final String cmd = mLineArgs[0];
+                res = "batch".equals(cmd) ? -1 : runCommand(cmd);
+                if (res != 0) {
+                    getErrPrintWriter().println("batch: line " + lineNo + " failed: " + line);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            getErrPrintWriter().println("batch: could not read input: " + e.getMessage());
+            res = -1;
+        } finally {
+            mLineArgs = null;
+            mInBatch = false;
+            if (mBatchChanged) {
+                mConfig.saveFastCharge(mService, mBatchState);
+            }
+            mConfig.endWrite();
+            if (mBatchChanged) {
+                mConfig.notifyFastChargeChanged(mService, mBatchState);
+            }
+        }
+        pw.println("batch: " + lineNo + " lines, result " + res);
+        return res;
+    }
+
+    private String nextArg() {
+        if (mLineArgs != null) {
+            return mLinePos < mLineArgs.length ? mLineArgs[mLinePos++] : null;
+        }
+        return getNextArg();
+    }
+
+    private String joinRemainingArgs() {
+        StringBuilder sb = null;
+        String arg;
+        while ((arg = getNextArg()) != null) {
+            if (sb == null) {
+                sb = new StringBuilder(arg);
+            } else {
+                sb.append(' ').append(arg);
+            }
+        }
+        return sb == null ? null : sb.toString();
+    }
+
+    private static Boolean parseState(String value) {
+        if (TextUtils.isEmpty(value)) return null;
+        switch (value) {
+            case "1":
+            case "on":
+            case "true":
+                return Boolean.TRUE;
+            case "0":
+            case "off":
+            case "false":
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void onHelp() {
+        final PrintWriter pw = getOutPrintWriter();
+        pw.println("Fast charge commands:");
+        pw.println("  get");
+        pw.println("    Print the node state (1 or 0).");
+        pw.println("  set on|off|1|0");
+        pw.println("    Write the node, persist the preference and notify the UI.");
+        pw.println("  status");
+        pw.println("    Print node path, support, node and saved state.");
+        pw.println("  profile apply fast|cool|saved");
+        pw.println("    Apply a named profile; saved re-applies the stored preference.");
+        pw.println("  stats [dump]");
+        pw.println("    Print shell counters, telemetry row counts and scheduler budget use.");
+        pw.println("  batch [CMD; CMD; ...]");
+        pw.println("    Run one command per line from stdin, or ';' separated");
+        pw.println("    arguments. The preference and broadcast are published once");
+        pw.println("    at the end. Stops at the first failing line.");
+    }
+}
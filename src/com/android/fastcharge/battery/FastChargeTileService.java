@@ -20,15 +20,10 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.os.UserHandle;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 
-import androidx.preference.PreferenceManager;
-
 import com.android.fastcharge.R;
-import com.android.fastcharge.utils.FileUtils;
 
 /**
  * Quick Settings tile service for Fast Charging
@@ -113,21 +108,9 @@ public class FastChargeTileService extends TileService {
         // Set flag to prevent handling our own broadcast
         mInternalStart = true;
 
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        // Toggle the current state
+        // Toggle the current state, then write, save and broadcast it in one step
         boolean enabled = !mConfig.isCurrentlyEnabled(mConfig.getFastChargePath());
-        // Write new state to system file - "1" enables, "0" disables
-        FileUtils.writeLine(mConfig.getFastChargePath(), enabled ? "1" : "0");
-
-        // Save state in preferences
-        sharedPrefs.edit().putBoolean(mConfig.FASTCHARGE_KEY, enabled).apply();
-
-        // Broadcast change so other components can update
-        Intent intent = new Intent(mConfig.ACTION_FAST_CHARGE_SERVICE_CHANGED);
-        intent.putExtra(mConfig.EXTRA_FAST_CHARGE_STATE, enabled);
-        intent.setFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
-        this.sendBroadcastAsUser(intent, UserHandle.CURRENT);
+        mConfig.setFastChargeEnabled(this, enabled);
 
         // Update this tile's appearance
         updateUI();
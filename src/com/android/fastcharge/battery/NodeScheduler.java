@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2023-2024 cyberknight777
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fastcharge.battery;
+
+import android.app.AlarmManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.android.fastcharge.utils.FileUtils;
+
+/**
+ * Single scheduler for all periodic node work in this process
+ *
+ * Every task interval is rounded up to a power of two number of ticks and
+ * due times are multiples of that interval, so a longer task always fires
+ * together with the shorter ones. The nodes of all tasks due in the same
+ * pass are read once and handed to each task.
+ *
+ * Intervals stretch while the screen is off or the device is unplugged,
+ * and a per-hour wakeup and CPU time budget defers passes to the next
+ * hour once it is used up. One alarm drives everything; AlarmManager holds
+ * its wakelock until the listener returns, so no wakelock of our own is
+ * taken.
+ */
+public final class NodeScheduler {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "NodeScheduler";
+
+    private static final long TICK_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private static final int SCREEN_OFF_STRETCH = 4;
+    private static final int UNPLUGGED_STRETCH = 2;
+
+    // Per-hour budget; wakeups are passes run while the device is not interactive
+    private static final int MAX_WAKEUPS_PER_HOUR = 12;
+    private static final long MAX_CPU_MS_PER_HOUR = 1000;
+
+    /**
+     * Periodic work; runs on the scheduler thread
+     */
+    public interface Task {
+        /**
+         * @param nodes value of each requested node, null if it could not be read
+         */
+        void run(Map<String, String> nodes);
+    }
+
+    private static final class Entry {
+        final String name;
+        final long intervalMs;
+        final String[] nodes;
+        final Task task;
+        long effectiveMs;
+        long nextDue;
+        int runs;
+
+        Entry(String name, long intervalMs, String[] nodes, Task task) {
+            this.name = name;
+            this.intervalMs = intervalMs;
+            this.nodes = nodes;
+            this.task = task;
+        }
+    }
+
+    private static NodeScheduler instance = null;
+
+    public static synchronized NodeScheduler getInstance(Context context) {
+
+        if (instance == null) {
+            instance = new NodeScheduler(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private final AlarmManager mAlarmManager;
+    private final Handler mHandler;
+
+    // Everything below is only touched on mHandler
+    private final List<Entry> mEntries = new ArrayList<>();
+    private boolean mInteractive;
+    private boolean mPlugged;
+    private long mAlarmTime = -1;
+
+    private long mBudgetStart;
+    private int mWakeups;
+    private long mCpuMs;
+
+    private int mPasses;
+    private int mDeferredPasses;
+    private int mNodeReads;
+    private int mNodeReadsSaved;
+
+    private final AlarmManager.OnAlarmListener mAlarmListener = this::runPass;
+
+    private final BroadcastReceiver mStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            switch (intent.getAction()) {
+                case Intent.ACTION_SCREEN_ON:
+                    mInteractive = true;
+                    break;
+                case Intent.ACTION_SCREEN_OFF:
+                    mInteractive = false;
+                    break;
+                case Intent.ACTION_POWER_CONNECTED:
+                    mPlugged = true;
+                    break;
+                case Intent.ACTION_POWER_DISCONNECTED:
+                    mPlugged = false;
+                    break;
+                default:
+                    return;
+            }
+            restretch();
+        }
+    };
+
+    private NodeScheduler(Context context) {
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        mInteractive = context.getSystemService(PowerManager.class).isInteractive();
+        final Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mPlugged = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        mBudgetStart = SystemClock.elapsedRealtime();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context.registerReceiver(mStateReceiver, filter, null, mHandler,
+                Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    /**
+     * Registers or replaces a periodic task
+     *
+     * @param name Unique task name, also used in diagnostics
+     * @param intervalMs Nominal interval, rounded up to a power of two number
+     *        of ticks; pass one already on that grid to keep it exact
+     * @param nodes Node paths read for the task in each pass
+     * @param task Work to run with the values read
+     */
+    public void register(String name, long intervalMs, String[] nodes, Task task) {
+        final Entry entry = new Entry(name, intervalMs, nodes, task);
+        mHandler.post(() -> {
+            removeEntry(name);
+            mEntries.add(entry);
+            updateDue(entry, SystemClock.elapsedRealtime());
+            schedule();
+        });
+    }
+
+    public void unregister(String name) {
+        mHandler.post(() -> {
+            removeEntry(name);
+            schedule();
+        });
+    }
+
+    private void removeEntry(String name) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).name.equals(name)) {
+                mEntries.remove(i);
+            }
+        }
+    }
+
+    private void restretch() {
+        final long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            // Keep runs that are already overdue (alarm window or budget)
+            final long overdue = entry.nextDue;
+            updateDue(entry, now);
+            if (overdue <= now) entry.nextDue = overdue;
+        }
+        schedule();
+    }
+
+    private void updateDue(Entry entry, long now) {
+        int stretch = 1;
+        if (!mInteractive) stretch *= SCREEN_OFF_STRETCH;
+        if (!mPlugged) stretch *= UNPLUGGED_STRETCH;
+
+        final long ticks = Math.max(1, (entry.intervalMs * stretch + TICK_MS - 1) / TICK_MS);
+        final long roundedTicks = ticks == 1 ? 1 : Long.highestOneBit(ticks - 1) * 2;
+        entry.effectiveMs = roundedTicks * TICK_MS;
+        // Next multiple of the interval, strictly after now
+        entry.nextDue = (now / entry.effectiveMs + 1) * entry.effectiveMs;
+    }
+
+    private void schedule() {
+        if (mEntries.isEmpty()) {
+            if (mAlarmTime >= 0) {
+                mAlarmManager.cancel(mAlarmListener);
+                mAlarmTime = -1;
+            }
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+        for (Entry entry : mEntries) {
+            next = Math.min(next, entry.nextDue);
+        }
+        if (isOverBudget(SystemClock.elapsedRealtime())) {
+            next = Math.max(next, mBudgetStart + HOUR_MS);
+        }
+        if (next == mAlarmTime) return;
+
+        mAlarmTime = next;
+        // The window lets the system fold this into other pending wakeups
+        mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, next, TICK_MS,
+                TAG, mAlarmListener, mHandler);
+    }
+
+    private boolean isOverBudget(long now) {
+        if (now - mBudgetStart >= HOUR_MS) {
+            mBudgetStart = now;
+            mWakeups = 0;
+            mCpuMs = 0;
+        }
+        return mWakeups >= MAX_WAKEUPS_PER_HOUR || mCpuMs >= MAX_CPU_MS_PER_HOUR;
+    }
+
+    private void runPass() {
+        mAlarmTime = -1;
+        final long now = SystemClock.elapsedRealtime();
+        if (isOverBudget(now)) {
+            mDeferredPasses++;
+            if (DEBUG)
+                Log.d(TAG, "Budget used up, deferring pass");
+            schedule();
+            return;
+        }
+
+        final long cpuStart = SystemClock.currentThreadTimeMillis();
+        final List<Entry> due = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.nextDue <= now) {
+                due.add(entry);
+            }
+        }
+
+        // One read per distinct node for the whole pass
+        final Map<String, String> values = new ArrayMap<>();
+        for (Entry entry : due) {
+            for (String node : entry.nodes) {
+                if (values.containsKey(node)) {
+                    mNodeReadsSaved++;
+                    continue;
+                }
+                values.put(node, FileUtils.readOneLine(node));
+                mNodeReads++;
+            }
+        }
+
+        for (Entry entry : due) {
+            try {
+                entry.task.run(values);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task " + entry.name + " failed", e);
+            }
+            entry.runs++;
+            updateDue(entry, now);
+        }
+
+        mPasses++;
+        if (!mInteractive) mWakeups++;
+        mCpuMs += SystemClock.currentThreadTimeMillis() - cpuStart;
+        if (DEBUG)
+            Log.d(TAG, "Ran " + due.size() + " tasks, " + values.size() + " node reads");
+        schedule();
+    }
+
+    /**
+     * Writes budget use and task state, blocking until the scheduler
+     * thread has produced it
+     */
+    public void dump(PrintWriter pw) {
+        final StringBuilder sb = new StringBuilder();
+        final Runnable collect = () -> {
+            final long now = SystemClock.elapsedRealtime();
+            isOverBudget(now);
+            sb.append("scheduler_interactive=").append(mInteractive).append('\n');
+            sb.append("scheduler_plugged=").append(mPlugged).append('\n');
+            sb.append("scheduler_budget_window_s=")
+                    .append((now - mBudgetStart) / 1000).append('\n');
+            sb.append("scheduler_wakeups=").append(mWakeups)
+                    .append('/').append(MAX_WAKEUPS_PER_HOUR).append('\n');
+            sb.append("scheduler_cpu_ms=").append(mCpuMs)
+                    .append('/').append(MAX_CPU_MS_PER_HOUR).append('\n');
+            sb.append("scheduler_passes=").append(mPasses).append('\n');
+            sb.append("scheduler_deferred_passes=").append(mDeferredPasses).append('\n');
+            sb.append("scheduler_node_reads=").append(mNodeReads).append('\n');
+            sb.append("scheduler_node_reads_saved=").append(mNodeReadsSaved).append('\n');
+            for (Entry entry : mEntries) {
+                sb.append("scheduler_task=").append(entry.name)
+                        .append(" interval_s=").append(entry.effectiveMs / 1000)
+                        .append(" due_in_s=").append((entry.nextDue - now) / 1000)
+                        .append(" runs=").append(entry.runs).append('\n');
+            }
+        };
+        if (!mHandler.runWithScissors(collect, 1000)) {
+            pw.println("scheduler: busy");
+            return;
+        }
+        pw.print(sb);
+    }
+}